@@ -39,6 +39,13 @@ public class Game implements JSON.Convertible {
         this.owner = owner;
     }
 
+    public Game(Game game) {
+        this(game.id, game.owner);
+        this.opponent = game.opponent;
+        this.winner = game.winner;
+        this.moves.addAll(game.moves);
+    }
+
     public String id() {
         return id;
     }
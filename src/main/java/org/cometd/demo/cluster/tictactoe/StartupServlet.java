@@ -27,6 +27,7 @@ import javax.servlet.UnavailableException;
 import org.cometd.annotation.server.ServerAnnotationProcessor;
 import org.cometd.bayeux.server.BayeuxServer;
 import org.cometd.demo.cluster.tictactoe.service.GamesService;
+import org.cometd.demo.cluster.tictactoe.service.ReplicationService;
 import org.cometd.oort.Oort;
 import org.cometd.oort.Seti;
 import org.slf4j.Logger;
@@ -35,6 +36,8 @@ import org.slf4j.LoggerFactory;
 public class StartupServlet extends GenericServlet {
     private static final Logger LOGGER = LoggerFactory.getLogger(GamesService.class);
 
+    private ReplicationService replicationService;
+
     @Override
     public void init() throws ServletException {
         try {
@@ -54,13 +57,29 @@ public class StartupServlet extends GenericServlet {
             // we create and use a ServerAnnotationProcessor manually.
             BayeuxServer bayeuxServer = oort.getBayeuxServer();
             ServerAnnotationProcessor processor = new ServerAnnotationProcessor(bayeuxServer, oort, seti);
-            GamesService gamesService = new GamesService(node);
+            replicationService = new ReplicationService(oort);
+            processor.process(replicationService);
+            GamesService gamesService = new GamesService(node, replicationService);
             processor.process(gamesService);
+            replicationService.start(gamesService);
+            // Exported as a managed attribute, see web.xml.
+            getServletContext().setAttribute(ReplicationService.ATTRIBUTE, replicationService);
         } catch (Exception x) {
             throw new ServletException(x);
         }
     }
 
+    @Override
+    public void destroy() {
+        try {
+            if (replicationService != null) {
+                replicationService.stop();
+            }
+        } catch (Exception x) {
+            LOGGER.warn("could not stop replication", x);
+        }
+    }
+
     @Override
     public void service(ServletRequest req, ServletResponse res) throws ServletException {
         throw new UnavailableException("Configuration Servlet");
@@ -19,7 +19,9 @@ package org.cometd.demo.cluster.tictactoe.service;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -48,7 +50,7 @@ import org.slf4j.LoggerFactory;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Service(GamesService.NAME)
-public class GamesService {
+public class GamesService implements ReplicationService.Games {
     public static final String NAME = "games_service";
     private static final Logger LOGGER = LoggerFactory.getLogger(GamesService.class);
     private static final AtomicLong GAME_IDS = new AtomicLong();
@@ -58,14 +60,16 @@ public class GamesService {
     private final ConcurrentMap<String, Game> _challengedGames = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, Game> _liveGames = new ConcurrentHashMap<>();
     private final String node;
+    private final ReplicationService replication;
     @Inject
     private Seti seti;
     @Session
     private LocalSession _session;
     private volatile String migration;
 
-    public GamesService(String node) {
+    public GamesService(String node, ReplicationService replication) {
         this.node = node;
+        this.replication = replication;
     }
 
     @Configure({"/games", "/games/move", "/games/result"})
@@ -104,6 +108,7 @@ public class GamesService {
                 LOGGER.debug("new game by player {}: {}", player, game);
             }
             _newGames.put(gameId, game);
+            replication.replicateGame(ReplicationService.State.NEW, game);
             caller.result(game);
             broadcastGameList();
         } else {
@@ -154,12 +159,22 @@ public class GamesService {
 
             _players.remove(player);
 
-            _newGames.values().removeIf(game -> game.owner().equals(player));
-            _challengedGames.values().removeIf(game -> game.owner().equals(player));
-            _liveGames.values().removeIf(game -> game.owner().equals(player));
+            removeGames(_newGames.values(), player);
+            removeGames(_challengedGames.values(), player);
+            removeGames(_liveGames.values(), player);
         };
     }
 
+    private void removeGames(Collection<Game> games, String player) {
+        for (Iterator<Game> iterator = games.iterator(); iterator.hasNext();) {
+            Game game = iterator.next();
+            if (game.owner().equals(player)) {
+                iterator.remove();
+                replication.replicateRemove(game);
+            }
+        }
+    }
+
     @RemoteCall("/games/find")
     public void findGame(RemoteCall.Caller caller, Map<String, Object> data) {
         String player = (String)data.get("player");
@@ -226,6 +241,7 @@ public class GamesService {
         if (game != null) {
             game.opponent(player(session));
             _challengedGames.put(gameId, game);
+            replication.replicateGame(ReplicationService.State.CHALLENGED, game);
             // Send the challenge to the game owner.
             Map<String, Object> reply = new HashMap<>();
             reply.put("type", "request");
@@ -255,6 +271,7 @@ public class GamesService {
             }
             if (game != null) {
                 _liveGames.put(gameId, game);
+                replication.replicateGame(ReplicationService.State.LIVE, game);
                 Map<String, Object> reply = new HashMap<>();
                 reply.put("type", "response");
                 reply.put("result", true);
@@ -291,6 +308,7 @@ public class GamesService {
 
         if (game != null) {
             if (game.move(move)) {
+                replication.replicateMove(move);
                 if (migration == null) {
                     String player = player(session);
                     String otherPlayer = game.opponent();
@@ -340,6 +358,7 @@ public class GamesService {
 
                     // Remove the game.
                     _liveGames.remove(game.id());
+                    replication.replicateRemove(game);
 
                     // Disconnect current player.
                     String url = migrationURL(player);
@@ -371,9 +390,59 @@ public class GamesService {
     @RemoteCall("/games/migrate/game")
     public void migrateGame(RemoteCall.Caller caller, Game game) {
         _liveGames.put(game.id(), game);
+        replication.replicateGame(ReplicationService.State.LIVE, game);
         caller.result(true);
     }
 
+    @Override
+    public Map<ReplicationService.State, Collection<Game>> snapshot() {
+        Map<ReplicationService.State, Collection<Game>> snapshot = new EnumMap<>(ReplicationService.State.class);
+        for (ReplicationService.State state : ReplicationService.State.values()) {
+            snapshot.put(state, new ArrayList<>(games(state).values()));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void promote(Map<ReplicationService.State, Collection<Game>> games) {
+        // Take over the games of a node that left the cluster,
+        // so that its players can reconnect to this node.
+        // The node may have only been partitioned away, and this
+        // node may already hold a more recent copy of its games.
+        games.forEach((state, replicas) -> {
+            for (Game game : replicas) {
+                if (holds(game.id())) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("skipping promotion of replica {}", game);
+                    }
+                } else if (games(state).putIfAbsent(game.id(), game) == null) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("promoting {} replica {}", state, game);
+                    }
+                    replication.replicateGame(state, game);
+                }
+            }
+        });
+        broadcastGameList();
+    }
+
+    private boolean holds(String gameId) {
+        return _newGames.containsKey(gameId) || _challengedGames.containsKey(gameId) || _liveGames.containsKey(gameId);
+    }
+
+    private ConcurrentMap<String, Game> games(ReplicationService.State state) {
+        switch (state) {
+            case NEW:
+                return _newGames;
+            case CHALLENGED:
+                return _challengedGames;
+            case LIVE:
+                return _liveGames;
+            default:
+                throw new IllegalArgumentException(state.name());
+        }
+    }
+
     @Listener("/service/games/migrate")
     public void migrate(ServerSession session, ServerMessage message) {
         Set<String> knownComets = seti.getOort().getKnownComets();
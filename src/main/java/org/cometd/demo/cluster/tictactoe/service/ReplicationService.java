@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2020-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.cluster.tictactoe.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cometd.annotation.Service;
+import org.cometd.annotation.server.RemoteCall;
+import org.cometd.bayeux.Message;
+import org.cometd.demo.cluster.tictactoe.Game;
+import org.cometd.oort.Oort;
+import org.cometd.oort.OortComet;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Replicates the game state changes of this node to a buddy node,
+ * so that the buddy can take over the games if this node dies.</p>
+ * <p>Changes are numbered with a sequence, queued, and sent in batches
+ * to the buddy over the existing {@link OortComet}, without waiting for
+ * previous batches to be acknowledged.
+ * The buddy replies with the sequence of the last change it applied,
+ * so that on failure the replication continues from that change.
+ * The buddy also replies with the incarnation of its replicas, so that
+ * if it lost them the replication starts over with all the games.</p>
+ * <p>When the buddy detects that this node left the cluster, it promotes
+ * the replicated games to its own games.
+ * Leaving the cluster cannot be told apart from a network partition,
+ * so after a partition both nodes may hold the same games.</p>
+ */
+@Service(ReplicationService.NAME)
+@ManagedObject("Replicates games to a buddy node")
+public class ReplicationService implements Oort.CometListener {
+    public static final String NAME = "replication_service";
+    public static final String ATTRIBUTE = ReplicationService.class.getName();
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationService.class);
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final int MAX_PENDING_CHANGES = 10_000;
+    private static final long MIN_RETRY_DELAY = 10;
+    private static final long MAX_RETRY_DELAY = 1000;
+
+    private final ConcurrentMap<String, Replica> _replicas = new ConcurrentHashMap<>();
+    private final AtomicLong _incarnations = new AtomicLong();
+    private final Deque<Change> _changes = new ArrayDeque<>();
+    private final Oort oort;
+    private Scheduler _scheduler;
+    private Games _games;
+    private String _buddy;
+    private long _sequence;
+    private long _sent;
+    private long _acknowledged;
+    private long _resynced;
+    private long _epoch;
+    private String _incarnation;
+    private int _failures;
+    private boolean _flushPending;
+    private boolean _stopped;
+    private volatile long _lag;
+    private volatile long _maxLag;
+
+    public ReplicationService(Oort oort) {
+        this.oort = oort;
+    }
+
+    public void start(Games games) throws Exception {
+        _games = games;
+        _scheduler = new ScheduledExecutorScheduler("replication-" + oort.getURL(), true);
+        _scheduler.start();
+        oort.addCometListener(this);
+        updateBuddy(ring(null));
+    }
+
+    public void stop() throws Exception {
+        oort.removeCometListener(this);
+        synchronized (this) {
+            // Games may still change after this service is stopped,
+            // as the CometD servlet is destroyed after the startup servlet.
+            _stopped = true;
+            _buddy = null;
+            _changes.clear();
+        }
+        if (_scheduler != null) {
+            _scheduler.stop();
+        }
+    }
+
+    @ManagedAttribute("The node games are replicated to")
+    public synchronized String getBuddy() {
+        return _buddy;
+    }
+
+    @ManagedAttribute("The number of changes not yet acknowledged by the buddy")
+    public synchronized long getPendingChanges() {
+        return _sequence - _acknowledged;
+    }
+
+    @ManagedAttribute("The replication lag of the last acknowledged change, in milliseconds")
+    public long getReplicationLag() {
+        return _lag;
+    }
+
+    @ManagedAttribute("The max replication lag since the buddy changed or the last reset, in milliseconds")
+    public long getMaxReplicationLag() {
+        return _maxLag;
+    }
+
+    @ManagedOperation(value = "Resets the max replication lag", impact = "ACTION")
+    public void resetMaxReplicationLag() {
+        _maxLag = 0;
+    }
+
+    public void replicateGame(State state, Game game) {
+        replicate("game", game.id(), gameData(state, game));
+    }
+
+    public void replicateMove(Game.Move move) {
+        replicate("move", move.gameId, move);
+    }
+
+    public void replicateRemove(Game game) {
+        replicate("remove", game.id(), null);
+    }
+
+    private void replicate(String type, String gameId, Object data) {
+        synchronized (this) {
+            // Without a buddy there is nothing to replicate to,
+            // the games are replicated when a buddy is available.
+            if (_stopped || _buddy == null) {
+                return;
+            }
+            _changes.offer(new Change(++_sequence, type, gameId, data, false));
+            // If the buddy cannot keep up, a snapshot of the games
+            // takes less memory than all the changes since the last one.
+            if (_sequence - Math.max(_acknowledged, _resynced) > MAX_PENDING_CHANGES) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("too many changes pending for {}, resyncing", _buddy);
+                }
+                resync();
+            }
+        }
+        scheduleFlush(0);
+    }
+
+    @Override
+    public void cometJoined(Event event) {
+        List<String> ring = ring(null);
+        updateBuddy(ring);
+        dropReplicas(ring);
+    }
+
+    @Override
+    public void cometLeft(Event event) {
+        String cometURL = event.getCometURL();
+        List<String> ring = ring(cometURL);
+        updateBuddy(ring);
+        promoteReplicas(cometURL);
+        dropReplicas(ring);
+    }
+
+    private void promoteReplicas(String cometURL) {
+        Replica replica = _replicas.remove(cometURL);
+        if (replica != null) {
+            Map<State, Collection<Game>> games = new EnumMap<>(State.class);
+            synchronized (replica) {
+                replica.games.forEach((id, game) -> games.computeIfAbsent(replica.states.get(id), k -> new ArrayList<>()).add(game));
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("promoting replicas of {}: {}", cometURL, games);
+            }
+            _games.promote(games);
+        }
+    }
+
+    private void dropReplicas(List<String> ring) {
+        // Replicas of nodes that now replicate to another buddy
+        // are no longer updated, and must not be promoted.
+        String url = oort.getURL();
+        _replicas.keySet().removeIf(cometURL -> {
+            boolean stale = !ring.contains(cometURL) || !successor(ring, cometURL).equals(url);
+            if (stale && LOGGER.isDebugEnabled()) {
+                LOGGER.debug("dropping replicas of {}", cometURL);
+            }
+            return stale;
+        });
+    }
+
+    private List<String> ring(String leftURL) {
+        // Buddies are chosen in a ring of the sorted node URLs,
+        // so that each node is the buddy of a different node.
+        List<String> urls = new ArrayList<>(oort.getKnownComets());
+        urls.remove(leftURL);
+        urls.add(oort.getURL());
+        Collections.sort(urls);
+        return urls;
+    }
+
+    private static String successor(List<String> ring, String url) {
+        return ring.get((ring.indexOf(url) + 1) % ring.size());
+    }
+
+    private void updateBuddy(List<String> ring) {
+        String url = oort.getURL();
+        String buddy = successor(ring, url);
+        if (buddy.equals(url)) {
+            buddy = null;
+        }
+
+        synchronized (this) {
+            if (_stopped || Objects.equals(buddy, _buddy)) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("replication buddy changed from {} to {}", _buddy, buddy);
+            }
+            _buddy = buddy;
+            _failures = 0;
+            _maxLag = 0;
+            resync();
+        }
+        scheduleFlush(0);
+    }
+
+    private void resync() {
+        // Replies to changes sent in a previous epoch are ignored.
+        ++_epoch;
+        _incarnation = null;
+        _changes.clear();
+        _acknowledged = _sequence;
+        _sent = _sequence;
+        if (_buddy != null) {
+            // The buddy does not have the previous changes,
+            // so reset its replicas and send all the games.
+            _changes.offer(new Change(++_sequence, "reset", null, null, true));
+            _games.snapshot().forEach((state, games) -> {
+                for (Game game : games) {
+                    _changes.offer(new Change(++_sequence, "game", game.id(), gameData(state, game), true));
+                }
+            });
+        }
+        _resynced = _sequence;
+    }
+
+    private static Map<String, Object> gameData(State state, Game game) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("state", state.name());
+        data.put("game", new Game(game));
+        return data;
+    }
+
+    private synchronized void scheduleFlush(long delay) {
+        if (_stopped || _flushPending) {
+            return;
+        }
+        _flushPending = true;
+        _scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        String buddy;
+        long epoch;
+        List<Map<String, Object>> batch = new ArrayList<>();
+        boolean more;
+        synchronized (this) {
+            _flushPending = false;
+            buddy = _buddy;
+            epoch = _epoch;
+            if (buddy == null || _sent == _sequence) {
+                return;
+            }
+            for (Change change : _changes) {
+                if (change.sequence > _sent) {
+                    batch.add(change.toMap());
+                    _sent = change.sequence;
+                    if (batch.size() == MAX_BATCH_SIZE) {
+                        break;
+                    }
+                }
+            }
+            more = _sent < _sequence;
+        }
+
+        OortComet comet = oort.getComet(buddy);
+        if (comet == null) {
+            rewind(epoch, -1);
+            return;
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("replicating {} changes to {}", batch.size(), buddy);
+        }
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("url", oort.getURL());
+        data.put("id", oort.getId());
+        data.put("changes", batch);
+        comet.remoteCall("/games/replica", data, reply -> replied(epoch, reply));
+
+        // Pipeline the next batch without waiting for the reply.
+        if (more) {
+            scheduleFlush(0);
+        }
+    }
+
+    private void replied(long epoch, Message reply) {
+        Object data = reply.getData();
+        if (!(data instanceof Map)) {
+            // The call did not reach the replicas.
+            rewind(epoch, -1);
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>)data;
+        long applied = ((Number)map.get("applied")).longValue();
+        String incarnation = (String)map.get("incarnation");
+        synchronized (this) {
+            if (epoch != _epoch) {
+                return;
+            }
+            if (_incarnation == null) {
+                _incarnation = incarnation;
+            } else if (!_incarnation.equals(incarnation)) {
+                // The buddy lost the replicas, for example because it restarted
+                // or because it saw this node leave, so start a new epoch.
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("replicas lost by {}, resyncing", _buddy);
+                }
+                resync();
+                scheduleFlush(backoff());
+                return;
+            }
+        }
+
+        if (reply.isSuccessful()) {
+            acknowledge(epoch, applied);
+        } else {
+            rewind(epoch, applied);
+        }
+    }
+
+    private void acknowledge(long epoch, long applied) {
+        String buddy;
+        long lag = -1;
+        synchronized (this) {
+            if (epoch != _epoch) {
+                return;
+            }
+            buddy = _buddy;
+            Change change;
+            while ((change = _changes.peek()) != null && change.sequence <= applied) {
+                _changes.poll();
+                // Snapshots are not counted, as they may contain many games.
+                if (change.sequence == applied && !change.snapshot) {
+                    lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - change.nanoTime);
+                }
+            }
+            if (applied > _acknowledged) {
+                _failures = 0;
+            }
+            _acknowledged = Math.max(_acknowledged, applied);
+            _sent = Math.max(_sent, _acknowledged);
+            if (lag >= 0) {
+                _lag = lag;
+                _maxLag = Math.max(_maxLag, lag);
+            }
+        }
+        if (lag >= 0) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("replicated change {} to {} in {} ms", applied, buddy, lag);
+            }
+        }
+    }
+
+    private void rewind(long epoch, long applied) {
+        long delay;
+        synchronized (this) {
+            if (epoch != _epoch) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("replication to {} failed, applied change {}", _buddy, applied);
+            }
+            acknowledge(epoch, applied);
+            // Continue from the last acknowledged change.
+            _sent = _acknowledged;
+            delay = backoff();
+        }
+        scheduleFlush(delay);
+    }
+
+    private long backoff() {
+        // Back off, so that repeated failures do not spin the scheduler.
+        return Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(_failures++, 10));
+    }
+
+    @RemoteCall("/games/replica")
+    public void replica(RemoteCall.Caller caller, Map<String, Object> data) {
+        if (!oort.isOort(caller.getServerSession())) {
+            caller.failure("not a node");
+            return;
+        }
+
+        String url = (String)data.get("url");
+        String id = (String)data.get("id");
+        Replica replica = _replicas.compute(url, (k, v) -> {
+            // Ignore calls that arrive after the node left.
+            if (!oort.getKnownComets().contains(url)) {
+                return null;
+            }
+            // A node restarted with the same URL has a different id.
+            return v == null || !v.id.equals(id) ? new Replica(id, oort.getId() + "/" + _incarnations.incrementAndGet()) : v;
+        });
+        if (replica == null) {
+            caller.failure("unknown node");
+            return;
+        }
+
+        Object jsonChanges = data.get("changes");
+        @SuppressWarnings("unchecked")
+        List<Object> changes = jsonChanges instanceof Object[] ? Arrays.asList((Object[])jsonChanges) : (List<Object>)jsonChanges;
+
+        synchronized (replica) {
+            for (Object element : changes) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> change = (Map<String, Object>)element;
+                long sequence = ((Number)change.get("sequence")).longValue();
+                String type = (String)change.get("type");
+                if (sequence <= replica.applied) {
+                    // Already applied, the node is retrying.
+                    continue;
+                }
+                if (sequence != replica.applied + 1 && !"reset".equals(type)) {
+                    // A previous batch was lost, ask the node to continue from the last applied change.
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("replication gap from {}: expected change {}, got {}", url, replica.applied + 1, sequence);
+                    }
+                    caller.failure(replica.reply());
+                    return;
+                }
+                if (!replica.apply(type, (String)change.get("gameId"), change.get("data"))) {
+                    // Skip the change, otherwise the node would resend it forever,
+                    // for example while nodes with newer change types are rolled out.
+                    LOGGER.warn("skipping unknown change {} from {}: {}", sequence, url, type);
+                }
+                replica.applied = sequence;
+            }
+            caller.result(replica.reply());
+        }
+    }
+
+    /**
+     * <p>The state of a game: waiting for an opponent, challenged
+     * by an opponent but not yet accepted, or being played.</p>
+     */
+    public enum State {
+        NEW, CHALLENGED, LIVE
+    }
+
+    /**
+     * <p>The games of a node, to be replicated to its buddy
+     * and promoted when the buddy takes over the games of another node.</p>
+     */
+    public interface Games {
+        Map<State, Collection<Game>> snapshot();
+
+        void promote(Map<State, Collection<Game>> games);
+    }
+
+    private static class Change {
+        private final long nanoTime = System.nanoTime();
+        private final long sequence;
+        private final String type;
+        private final String gameId;
+        private final Object data;
+        private final boolean snapshot;
+
+        private Change(long sequence, String type, String gameId, Object data, boolean snapshot) {
+            this.sequence = sequence;
+            this.type = type;
+            this.gameId = gameId;
+            this.data = data;
+            this.snapshot = snapshot;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("sequence", sequence);
+            map.put("type", type);
+            map.put("gameId", gameId);
+            map.put("data", data);
+            return map;
+        }
+    }
+
+    private static class Replica {
+        private final Map<String, Game> games = new HashMap<>();
+        private final Map<String, State> states = new HashMap<>();
+        private final String id;
+        private final String incarnation;
+        private long applied;
+
+        private Replica(String id, String incarnation) {
+            this.id = id;
+            this.incarnation = incarnation;
+        }
+
+        private Map<String, Object> reply() {
+            return Map.of("applied", applied, "incarnation", incarnation);
+        }
+
+        private boolean apply(String type, String gameId, Object data) {
+            Game game;
+            switch (type) {
+                case "reset":
+                    games.clear();
+                    states.clear();
+                    return true;
+                case "game":
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> map = (Map<String, Object>)data;
+                    games.put(gameId, (Game)map.get("game"));
+                    states.put(gameId, State.valueOf((String)map.get("state")));
+                    return true;
+                case "move":
+                    game = games.get(gameId);
+                    if (game != null) {
+                        game.move((Game.Move)data);
+                    }
+                    return true;
+                case "remove":
+                    games.remove(gameId);
+                    states.remove(gameId);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+}
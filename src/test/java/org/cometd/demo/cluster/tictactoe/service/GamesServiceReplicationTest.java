@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.cluster.tictactoe.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.cometd.annotation.server.ServerAnnotationProcessor;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.client.BayeuxClient;
+import org.cometd.client.http.jetty.JettyHttpClientTransport;
+import org.cometd.demo.cluster.tictactoe.Game;
+import org.cometd.oort.Oort;
+import org.cometd.oort.Seti;
+import org.cometd.server.CometDServlet;
+import org.cometd.server.http.JSONTransport;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class GamesServiceReplicationTest {
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<BayeuxClient> clients = new ArrayList<>();
+    private HttpClient httpClient;
+    private Node node1;
+    private Node node2;
+
+    @BeforeEach
+    public void prepare() throws Exception {
+        httpClient = new HttpClient();
+        httpClient.start();
+        node1 = startNode("node1");
+        node2 = startNode("node2");
+        node1.oort.observeComet(node2.url);
+        await(() -> node2.url.equals(node1.replication.getBuddy()) && node1.url.equals(node2.replication.getBuddy()));
+    }
+
+    @AfterEach
+    public void dispose() throws Exception {
+        for (BayeuxClient client : clients) {
+            client.disconnect(1000);
+        }
+        for (Node node : nodes) {
+            node.stop();
+        }
+        httpClient.stop();
+    }
+
+    @Test
+    public void testFailoverPromotesLiveGame() throws Exception {
+        BayeuxClient owner = connect(node1, "owner");
+        BayeuxClient opponent = connect(node1, "opponent");
+
+        Message newGameReply = remoteCall(owner, "/games/new", Map.of());
+        assertTrue(newGameReply.isSuccessful());
+        String gameId = ((Game)newGameReply.getData()).id();
+
+        assertTrue(publish(opponent, "/service/games/challenge", Map.of("gameId", gameId, "type", "request")).isSuccessful());
+        assertTrue(publish(owner, "/service/games/challenge", Map.of("gameId", gameId, "type", "response", "result", true)).isSuccessful());
+        assertTrue(publish(owner, "/service/games/move", Map.of("gameId", gameId, "square", 4, "sequence", 0)).isSuccessful());
+        assertTrue(publish(opponent, "/service/games/move", Map.of("gameId", gameId, "square", 0, "sequence", 1)).isSuccessful());
+        await(() -> node1.replication.getPendingChanges() == 0);
+
+        // The replication is stopped before the players' sessions
+        // are removed, so node2 keeps the game of the players.
+        node1.stop();
+
+        // The owner reconnects to node2 and finds the game.
+        BayeuxClient player = connect(node2, "player");
+        Game game = null;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (game == null) {
+            Message findReply = remoteCall(player, "/games/find", Map.of("player", "owner"));
+            if (findReply.isSuccessful()) {
+                game = (Game)findReply.getData();
+            } else if (System.nanoTime() > end) {
+                fail("game not promoted");
+            } else {
+                Thread.sleep(10);
+            }
+        }
+
+        assertEquals(gameId, game.id());
+        assertEquals("owner", game.owner());
+        assertEquals("opponent", game.opponent());
+        // The replicated moves are in the promoted game.
+        assertFalse(game.move(move(gameId, 4, 2)));
+        assertFalse(game.move(move(gameId, 0, 2)));
+        assertTrue(game.move(move(gameId, 8, 2)));
+    }
+
+    private BayeuxClient connect(Node node, String player) throws Exception {
+        BayeuxClient client = new BayeuxClient(node.url, new JettyHttpClientTransport(null, httpClient));
+        clients.add(client);
+        client.handshake();
+        assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+        assertTrue(remoteCall(client, "/games/play", Map.of("player", player)).isSuccessful());
+        return client;
+    }
+
+    private static Message remoteCall(BayeuxClient client, String target, Object data) throws Exception {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        client.remoteCall(target, data, reply::complete);
+        return reply.get(5, TimeUnit.SECONDS);
+    }
+
+    private static Message publish(BayeuxClient client, String channel, Object data) throws Exception {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        client.getChannel(channel).publish(data, reply::complete);
+        return reply.get(5, TimeUnit.SECONDS);
+    }
+
+    private static Game.Move move(String gameId, int square, int sequence) {
+        Game.Move move = new Game.Move();
+        move.fromJSON(Map.of("gameId", gameId, "square", square, "sequence", sequence));
+        return move;
+    }
+
+    private Node startNode(String name) throws Exception {
+        Node node = new Node();
+        nodes.add(node);
+        node.start(name);
+        return node;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > end) {
+                fail("condition not met");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static class Node {
+        private Server server;
+        private Oort oort;
+        private Seti seti;
+        private ReplicationService replication;
+        private String url;
+
+        private void start(String name) throws Exception {
+            server = new Server();
+            ServerConnector connector = new ServerConnector(server);
+            server.addConnector(connector);
+            ServletContextHandler context = new ServletContextHandler(server, "/");
+            ServletHolder cometd = new ServletHolder(CometDServlet.class);
+            cometd.setInitParameter("transports", JSONTransport.class.getName());
+            cometd.setInitOrder(1);
+            context.addServlet(cometd, "/cometd/*");
+            server.start();
+
+            url = "http://localhost:" + connector.getLocalPort() + "/cometd";
+            BayeuxServer bayeuxServer = (BayeuxServer)context.getServletContext().getAttribute(BayeuxServer.ATTRIBUTE);
+            oort = new Oort(bayeuxServer, url);
+            oort.setSecret("test");
+            oort.start();
+            seti = new Seti(oort);
+            seti.start();
+
+            // Same wiring as StartupServlet.
+            ServerAnnotationProcessor processor = new ServerAnnotationProcessor(bayeuxServer, oort, seti);
+            replication = new ReplicationService(oort);
+            processor.process(replication);
+            GamesService gamesService = new GamesService(name, replication);
+            processor.process(gamesService);
+            replication.start(gamesService);
+        }
+
+        private void stop() throws Exception {
+            if (server.isStarted()) {
+                replication.stop();
+                seti.stop();
+                oort.stop();
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.cluster.tictactoe.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.cometd.annotation.server.ServerAnnotationProcessor;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.demo.cluster.tictactoe.Game;
+import org.cometd.oort.Oort;
+import org.cometd.server.CometDServlet;
+import org.cometd.server.http.JSONTransport;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class ReplicationServiceTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationServiceTest.class);
+
+    private final List<Node> nodes = new ArrayList<>();
+    private Node node1;
+    private Node node2;
+
+    @BeforeEach
+    public void prepare() throws Exception {
+        node1 = startNode();
+        node2 = startNode();
+        node1.oort.observeComet(node2.url);
+        await(() -> node2.url.equals(node1.replication.getBuddy()) && node1.url.equals(node2.replication.getBuddy()));
+    }
+
+    @AfterEach
+    public void dispose() throws Exception {
+        for (Node node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void testFailoverPromotesReplicasInTheirState() throws Exception {
+        Game newGame = node1.newGame("player1");
+        Game challengedGame = node1.newGame("player2");
+        node1.challenge(challengedGame, "player3");
+        Game liveGame = node1.newGame("player4");
+        node1.challenge(liveGame, "player5");
+        node1.accept(liveGame);
+        node1.move(liveGame, 4);
+        node1.move(liveGame, 0);
+        node1.move(liveGame, 8);
+        await(() -> node1.replication.getPendingChanges() == 0);
+
+        node1.stop();
+
+        await(() -> node2.games.get(ReplicationService.State.LIVE).containsKey(liveGame.id()));
+        assertPromoted(newGame, ReplicationService.State.NEW);
+        assertPromoted(challengedGame, ReplicationService.State.CHALLENGED);
+        assertPromoted(liveGame, ReplicationService.State.LIVE);
+    }
+
+    @Test
+    public void testResyncWhenBuddyLostReplicas() throws Exception {
+        Game game = node1.newGame("player1");
+        node1.challenge(game, "player2");
+        node1.accept(game);
+        node1.move(game, 4);
+        await(() -> node1.replication.getPendingChanges() == 0);
+
+        // Simulate a network drop that only node2 saw:
+        // node2 drops the replicas, but node1 keeps node2 as buddy.
+        Oort.CometListener.Event event = new Oort.CometListener.Event(node2.oort, node1.oort.getId(), node1.url);
+        node2.replication.cometLeft(event);
+        node2.games.values().forEach(Map::clear);
+        node2.replication.cometJoined(event);
+
+        // The next change finds a gap and node1 must resync.
+        node1.move(game, 0);
+        await(() -> node1.replication.getPendingChanges() == 0);
+
+        node1.stop();
+
+        await(() -> node2.games.get(ReplicationService.State.LIVE).containsKey(game.id()));
+        assertPromoted(game, ReplicationService.State.LIVE);
+    }
+
+    @Test
+    public void testReplicationLagUnderLoad() throws Exception {
+        int games = 1000;
+        List<Game> liveGames = new ArrayList<>();
+        for (int i = 0; i < games; ++i) {
+            Game game = node1.newGame("player" + i);
+            node1.challenge(game, "opponent" + i);
+            node1.accept(game);
+            liveGames.add(game);
+        }
+        await(() -> node1.replication.getPendingChanges() == 0);
+        node1.replication.resetMaxReplicationLag();
+
+        // Play the moves at a steady rate of about 10 moves per millisecond.
+        long begin = System.nanoTime();
+        int moves = 0;
+        for (int square = 0; square < 9; ++square) {
+            for (Game game : liveGames) {
+                node1.move(game, square);
+                if (++moves % 10 == 0) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        await(() -> node1.replication.getPendingChanges() == 0);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        long maxLag = node1.replication.getMaxReplicationLag();
+        LOGGER.info("replicated {} moves in {} ms, lag: last {} ms, max {} ms",
+                moves, elapsed, node1.replication.getReplicationLag(), maxLag);
+        assertTrue(maxLag < 10, "max replication lag " + maxLag + " ms");
+    }
+
+    private void assertPromoted(Game game, ReplicationService.State state) {
+        Game promoted = node2.games.get(state).get(game.id());
+        assertNotNull(promoted, game.id());
+        assertEquals(JSON.toString(game), JSON.toString(promoted));
+    }
+
+    private Node startNode() throws Exception {
+        Node node = new Node();
+        nodes.add(node);
+        node.start();
+        return node;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > end) {
+                fail("condition not met");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static class Node {
+        private final Map<ReplicationService.State, ConcurrentMap<String, Game>> games = new EnumMap<>(ReplicationService.State.class);
+        private Server server;
+        private Oort oort;
+        private ReplicationService replication;
+        private String url;
+        private int ids;
+
+        private void start() throws Exception {
+            for (ReplicationService.State state : ReplicationService.State.values()) {
+                games.put(state, new ConcurrentHashMap<>());
+            }
+
+            server = new Server();
+            ServerConnector connector = new ServerConnector(server);
+            server.addConnector(connector);
+            ServletContextHandler context = new ServletContextHandler(server, "/");
+            ServletHolder cometd = new ServletHolder(CometDServlet.class);
+            cometd.setInitParameter("transports", JSONTransport.class.getName());
+            cometd.setInitOrder(1);
+            context.addServlet(cometd, "/cometd/*");
+            server.start();
+
+            url = "http://localhost:" + connector.getLocalPort() + "/cometd";
+            BayeuxServer bayeuxServer = (BayeuxServer)context.getServletContext().getAttribute(BayeuxServer.ATTRIBUTE);
+            oort = new Oort(bayeuxServer, url);
+            oort.setSecret("test");
+            oort.start();
+
+            replication = new ReplicationService(oort);
+            new ServerAnnotationProcessor(bayeuxServer).process(replication);
+            replication.start(new ReplicationService.Games() {
+                @Override
+                public Map<ReplicationService.State, Collection<Game>> snapshot() {
+                    Map<ReplicationService.State, Collection<Game>> snapshot = new EnumMap<>(ReplicationService.State.class);
+                    games.forEach((state, map) -> snapshot.put(state, new ArrayList<>(map.values())));
+                    return snapshot;
+                }
+
+                @Override
+                public void promote(Map<ReplicationService.State, Collection<Game>> replicas) {
+                    replicas.forEach((state, list) -> list.forEach(game -> games.get(state).putIfAbsent(game.id(), game)));
+                }
+            });
+        }
+
+        private void stop() throws Exception {
+            if (server.isStarted()) {
+                replication.stop();
+                oort.stop();
+                server.stop();
+            }
+        }
+
+        private Game newGame(String player) {
+            Game game = new Game(url + "_" + ++ids, player);
+            games.get(ReplicationService.State.NEW).put(game.id(), game);
+            replication.replicateGame(ReplicationService.State.NEW, game);
+            return game;
+        }
+
+        private void challenge(Game game, String opponent) {
+            games.get(ReplicationService.State.NEW).remove(game.id());
+            game.opponent(opponent);
+            games.get(ReplicationService.State.CHALLENGED).put(game.id(), game);
+            replication.replicateGame(ReplicationService.State.CHALLENGED, game);
+        }
+
+        private void accept(Game game) {
+            games.get(ReplicationService.State.CHALLENGED).remove(game.id());
+            games.get(ReplicationService.State.LIVE).put(game.id(), game);
+            replication.replicateGame(ReplicationService.State.LIVE, game);
+        }
+
+        private void move(Game game, int square) {
+            Game.Move move = new Game.Move();
+            move.fromJSON(Map.of("gameId", game.id(), "square", square, "sequence", square));
+            game.move(move);
+            replication.replicateMove(move);
+        }
+    }
+}